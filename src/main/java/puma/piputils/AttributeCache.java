@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet 
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *    
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.piputils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of attribute values fetched from the database with refresh-ahead.
+ * 
+ * The cache is disabled by default, enable it by setting the
+ * puma.attr.cache.enabled system property to true. Beware that this trades
+ * freshness for latency: a value which is changed in the database is only
+ * picked up once its entry is refreshed or expires, so a revoked attribute
+ * (e.g., a role or a tenant) can still be granted for up to ttl milliseconds.
+ * Only updates written through this JVM are applied to the cache immediately.
+ * 
+ * Every entry expires ttl milliseconds after it was loaded. An entry which is
+ * accessed after refreshRatio * ttl milliseconds is still returned
+ * immediately, but is also reloaded asynchronously on a small background pool,
+ * so that hot entries never expire in the foreground. Entries which are no
+ * longer accessed are not refreshed and simply expire.
+ * 
+ * At most maxEntries entries are kept; when the cache is full, the least
+ * recently used entry is evicted.
+ * 
+ * At most one refresh per entry is in flight at any time and the number of
+ * concurrent and queued refreshes is bounded; refreshes which do not fit are
+ * dropped (the entry will simply be refreshed on a later access or expire).
+ * Refreshes are done by the given {@link AttributeLoader}.
+ * 
+ * The behavior can be tuned using the following system properties:
+ * puma.attr.cache.enabled, puma.attr.cache.ttl (in milliseconds),
+ * puma.attr.cache.refreshratio, puma.attr.cache.maxentries,
+ * puma.attr.cache.refreshthreads and puma.attr.cache.refreshqueue.
+ * 
+ * This class is thread-safe.
+ */
+public class AttributeCache {
+
+	private static final Logger logger = Logger.getLogger(AttributeCache.class
+			.getName());
+
+	private static final String ENABLED_ID = "puma.attr.cache.enabled";
+	private static final String TTL_ID = "puma.attr.cache.ttl";
+	private static final String REFRESH_RATIO_ID = "puma.attr.cache.refreshratio";
+	private static final String MAX_ENTRIES_ID = "puma.attr.cache.maxentries";
+	private static final String REFRESH_THREADS_ID = "puma.attr.cache.refreshthreads";
+	private static final String REFRESH_QUEUE_ID = "puma.attr.cache.refreshqueue";
+
+	private final AttributeLoader loader;
+
+	private final AttributeVersions versions;
+
+	private final boolean enabled;
+	private final long ttl;
+	private final long refreshAfter;
+	private final int maxEntries;
+
+	/**
+	 * The cached entries, least recently used first. Guarded by itself.
+	 */
+	private final LinkedHashMap<String, CachedValue> entries;
+
+	/**
+	 * The keys of the entries which are currently being refreshed.
+	 */
+	private final ConcurrentHashMap<String, Boolean> refreshing = new ConcurrentHashMap<String, Boolean>();
+
+	private final ThreadPoolExecutor refreshPool;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong refreshes = new AtomicLong();
+	private final AtomicLong droppedRefreshes = new AtomicLong();
+	private final AtomicLong failedRefreshes = new AtomicLong();
+
+	/**
+	 * Creates a new cache which refreshes its entries using the given loader.
+	 * Values are only cached or refreshed if their version in the given
+	 * versions did not change while they were being loaded.
+	 */
+	public AttributeCache(AttributeLoader loader, AttributeVersions versions) {
+		this.loader = loader;
+		this.versions = versions;
+		this.enabled = Boolean.parseBoolean(System.getProperty(ENABLED_ID,
+				"false"));
+		this.ttl = Long.parseLong(System.getProperty(TTL_ID, "60000"));
+		this.refreshAfter = (long) (ttl * Double.parseDouble(System
+				.getProperty(REFRESH_RATIO_ID, "0.8")));
+		this.maxEntries = Integer.parseInt(System.getProperty(MAX_ENTRIES_ID,
+				"10000"));
+		this.entries = new LinkedHashMap<String, CachedValue>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		int refreshThreads = Integer.parseInt(System.getProperty(
+				REFRESH_THREADS_ID, "2"));
+		int refreshQueue = Integer.parseInt(System.getProperty(
+				REFRESH_QUEUE_ID, "100"));
+		this.refreshPool = new ThreadPoolExecutor(refreshThreads,
+				refreshThreads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(refreshQueue),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "puma-attr-cache-refresh");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.refreshPool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Returns the cached value of the given attribute of the given entity, or
+	 * null if it is not cached or has expired. Schedules an asynchronous
+	 * refresh if the entry is due for one.
+	 */
+	public Tuple<Set<String>, DataType> get(String entityId, String attributeId) {
+		if (!enabled) {
+			return null;
+		}
+		String key = key(entityId, attributeId);
+		long now = System.currentTimeMillis();
+		CachedValue entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null && entry.expiresAt <= now) {
+				entries.remove(key);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		if (entry.refreshAt <= now) {
+			scheduleRefresh(key, entityId, attributeId, entry);
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Returns whether a non-expired value of the given attribute of the given
+	 * entity is cached.
+	 */
+	public boolean contains(String entityId, String attributeId) {
+		if (!enabled) {
+			return false;
+		}
+		CachedValue entry;
+		synchronized (entries) {
+			entry = entries.get(key(entityId, attributeId));
+		}
+		return entry != null && entry.expiresAt > System.currentTimeMillis();
+	}
+
+	/**
+	 * Caches the given freshly loaded value of the given attribute of the
+	 * given entity, unless the attribute has been updated since its version
+	 * was the given one, i.e., since the value was read.
+	 */
+	public void put(String entityId, String attributeId,
+			Tuple<Set<String>, DataType> value, long version) {
+		if (!enabled) {
+			return;
+		}
+		CachedValue entry = new CachedValue(value, System.currentTimeMillis());
+		synchronized (entries) {
+			if (versions.get(entityId, attributeId) == version) {
+				entries.put(key(entityId, attributeId), entry);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the cached value of the given attribute of the given entity by
+	 * the given value if it is cached, e.g., because it has been updated in
+	 * the database. Values which are not cached are not added, so bulk updates
+	 * do not flush the cache. The version of the attribute must have been
+	 * incremented before, so that concurrent reads of the old value are not
+	 * cached.
+	 */
+	public void update(String entityId, String attributeId,
+			Tuple<Set<String>, DataType> value) {
+		if (!enabled) {
+			return;
+		}
+		String key = key(entityId, attributeId);
+		CachedValue entry = new CachedValue(value, System.currentTimeMillis());
+		synchronized (entries) {
+			if (entries.containsKey(key)) {
+				entries.put(key, entry);
+			}
+		}
+	}
+
+	/**
+	 * Removes the cached value of the given attribute of the given entity.
+	 */
+	public void invalidate(String entityId, String attributeId) {
+		synchronized (entries) {
+			entries.remove(key(entityId, attributeId));
+		}
+	}
+
+	/**
+	 * Removes all cached values.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Stops the background refreshes. Cached values can still be used, but
+	 * will no longer be refreshed ahead of time.
+	 */
+	public void shutdown() {
+		refreshPool.shutdown();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * The number of completed background refreshes.
+	 */
+	public long getRefreshCount() {
+		return refreshes.get();
+	}
+
+	/**
+	 * The number of background refreshes which were dropped because the
+	 * refresh pool was full.
+	 */
+	public long getDroppedRefreshCount() {
+		return droppedRefreshes.get();
+	}
+
+	public long getFailedRefreshCount() {
+		return failedRefreshes.get();
+	}
+
+	private void scheduleRefresh(final String key, final String entityId,
+			final String attributeId, final CachedValue entry) {
+		if (refreshing.putIfAbsent(key, Boolean.TRUE) != null) {
+			// already being refreshed
+			return;
+		}
+		final long version = versions.get(entityId, attributeId);
+		try {
+			refreshPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Tuple<Set<String>, DataType> value = loader.load(
+								entityId, attributeId);
+						// only replace the entry we refreshed, it may have been
+						// invalidated, replaced or updated in the meantime
+						CachedValue refreshed = new CachedValue(value,
+								System.currentTimeMillis());
+						synchronized (entries) {
+							if (entries.get(key) == entry
+									&& versions.get(entityId, attributeId) == version) {
+								entries.put(key, refreshed);
+							}
+						}
+						refreshes.incrementAndGet();
+					} catch (RuntimeException e) {
+						failedRefreshes.incrementAndGet();
+						logger.log(Level.WARNING, "Could not refresh attribute "
+								+ attributeId + " of entity " + entityId, e);
+					} finally {
+						refreshing.remove(key);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			refreshing.remove(key);
+			droppedRefreshes.incrementAndGet();
+		}
+	}
+
+	private static String key(String entityId, String attributeId) {
+		return entityId + "|" + attributeId;
+	}
+
+	private class CachedValue {
+
+		private final Tuple<Set<String>, DataType> value;
+
+		private final long refreshAt;
+
+		private final long expiresAt;
+
+		private CachedValue(Tuple<Set<String>, DataType> value, long loadedAt) {
+			this.value = value;
+			this.refreshAt = loadedAt + refreshAfter;
+			this.expiresAt = loadedAt + ttl;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet 
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *    
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.piputils;
+
+import java.util.Set;
+
+/**
+ * Loads the value of a single attribute, e.g., to refresh an
+ * {@link AttributeCache} entry. Implementations are called from background
+ * threads, so they must not use a connection shared with other threads.
+ */
+public interface AttributeLoader {
+
+	/**
+	 * Returns the current value of the given attribute of the given entity,
+	 * an empty set without type if the entity does not have the attribute.
+	 */
+	public Tuple<Set<String>, DataType> load(String entityId, String attributeId);
+
+}
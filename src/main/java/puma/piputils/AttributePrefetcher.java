@@ -0,0 +1,426 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet 
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *    
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.piputils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.sun.xacml.EvaluationCtx;
+
+/**
+ * Learns which attributes are requested together and keeps the speculatively
+ * fetched values of the likely-next attributes until they are requested.
+ * 
+ * Within one evaluation context, every requested attribute id is recorded as
+ * the successor of the previous attribute id requested for the same designator
+ * type in a {@link CoAccessSketch}. When an attribute has to be fetched from
+ * the database, the sketch is used to predict which attributes of the same
+ * entity will follow, so that they can be fetched in the same query.
+ * 
+ * Prefetched values only serve the evaluation context which fetched them, so
+ * they are never shared between requests, and are kept for a short time only.
+ * A prefetched value which is requested is a hit, a prefetched value which
+ * expires or is evicted before being requested is wasted. If the fraction of
+ * wasted prefetches passes maxWasteRatio, prefetching is switched off
+ * (learning continues).
+ * 
+ * The behavior can be tuned using the following system properties:
+ * puma.attr.prefetch.enabled, puma.attr.prefetch.minsupport,
+ * puma.attr.prefetch.minconfidence, puma.attr.prefetch.max,
+ * puma.attr.prefetch.ttl (in milliseconds) and puma.attr.prefetch.maxwaste.
+ * 
+ * This class is thread-safe.
+ */
+public class AttributePrefetcher {
+
+	private static final Logger logger = Logger
+			.getLogger(AttributePrefetcher.class.getName());
+
+	private static final String ENABLED_ID = "puma.attr.prefetch.enabled";
+	private static final String MIN_SUPPORT_ID = "puma.attr.prefetch.minsupport";
+	private static final String MIN_CONFIDENCE_ID = "puma.attr.prefetch.minconfidence";
+	private static final String MAX_PREFETCH_ID = "puma.attr.prefetch.max";
+	private static final String TTL_ID = "puma.attr.prefetch.ttl";
+	private static final String MAX_WASTE_ID = "puma.attr.prefetch.maxwaste";
+
+	private static final String[] METRIC_NAMES = { "prefetch.precision",
+			"prefetch.recall", "prefetch.issued", "prefetch.hits",
+			"prefetch.wasted", "prefetch.enabled" };
+
+	private static final int MAX_SOURCES = 256;
+	private static final int MAX_SUCCESSORS = 8;
+	private static final int MAX_BUFFERED = 1024;
+	/**
+	 * The number of resolved prefetches (hits + wasted) needed before the
+	 * kill-switch is evaluated.
+	 */
+	private static final long KILL_SWITCH_MIN_SAMPLES = 100;
+
+	private final AttributeVersions versions;
+
+	private final CoAccessSketch sketch = new CoAccessSketch(MAX_SOURCES,
+			MAX_SUCCESSORS);
+
+	private volatile boolean enabled;
+	private final long minSupport;
+	private final double minConfidence;
+	private final int maxPrefetch;
+	private final long ttl;
+	private final double maxWasteRatio;
+
+	/**
+	 * The last attribute id requested per designator type, per evaluation
+	 * context. Contexts are only weakly referenced, so finished requests are
+	 * simply garbage collected.
+	 */
+	private final Map<EvaluationCtx, Map<Integer, String>> lastRequested = new WeakHashMap<EvaluationCtx, Map<Integer, String>>();
+
+	/**
+	 * The prefetched values of all contexts, oldest first. Contexts are
+	 * referenced until their prefetched values expire.
+	 */
+	private final LinkedHashMap<BufferKey, BufferedValue> buffer = new LinkedHashMap<BufferKey, BufferedValue>();
+
+	// metrics, guarded by this
+	private long issued = 0;
+	private long hits = 0;
+	private long wasted = 0;
+	private long lookups = 0;
+
+	public AttributePrefetcher(AttributeVersions versions) {
+		this.versions = versions;
+		this.enabled = Boolean.parseBoolean(System.getProperty(ENABLED_ID,
+				"true"));
+		this.minSupport = Long.parseLong(System.getProperty(MIN_SUPPORT_ID,
+				"10"));
+		this.minConfidence = Double.parseDouble(System.getProperty(
+				MIN_CONFIDENCE_ID, "0.6"));
+		this.maxPrefetch = Integer.parseInt(System.getProperty(
+				MAX_PREFETCH_ID, "4"));
+		this.ttl = Long.parseLong(System.getProperty(TTL_ID, "1000"));
+		this.maxWasteRatio = Double.parseDouble(System.getProperty(
+				MAX_WASTE_ID, "0.5"));
+	}
+
+	/**
+	 * Records that the given attribute is requested for the given designator
+	 * type in the given evaluation context.
+	 */
+	public void recordRequest(EvaluationCtx context, int designatorType,
+			String attributeId) {
+		String previousId;
+		synchronized (lastRequested) {
+			Map<Integer, String> last = lastRequested.get(context);
+			if (last == null) {
+				last = new HashMap<Integer, String>();
+				lastRequested.put(context, last);
+			}
+			previousId = last.put(designatorType, attributeId);
+		}
+		if (previousId != null) {
+			sketch.record(designatorType, previousId, attributeId);
+		}
+	}
+
+	/**
+	 * Returns the attribute ids to fetch together with the given one for the
+	 * given entity in the given context. Attributes which are already
+	 * prefetched for this context are left out. Returns an empty list if
+	 * prefetching is disabled.
+	 */
+	public List<String> predict(EvaluationCtx context, int designatorType,
+			String entityId, String attributeId) {
+		List<String> result = new ArrayList<String>();
+		if (!enabled) {
+			return result;
+		}
+		List<String> candidates = sketch.predict(designatorType, attributeId,
+				minSupport, minConfidence, maxPrefetch);
+		synchronized (this) {
+			for (String candidate : candidates) {
+				if (!buffer.containsKey(new BufferKey(context, entityId,
+						candidate))) {
+					result.add(candidate);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Stores the given prefetched values of the given entity for the given
+	 * context. Values of attributes which have been updated since their
+	 * version was the given one, i.e., since the values were read, are
+	 * dropped.
+	 */
+	public synchronized void store(EvaluationCtx context, String entityId,
+			Map<String, Tuple<Set<String>, DataType>> values,
+			Map<String, Long> readVersions) {
+		long now = System.currentTimeMillis();
+		evictExpired(now);
+		for (Map.Entry<String, Tuple<Set<String>, DataType>> value : values
+				.entrySet()) {
+			if (versions.get(entityId, value.getKey()) != readVersions.get(value
+					.getKey())) {
+				continue;
+			}
+			BufferKey key = new BufferKey(context, entityId, value.getKey());
+			if (buffer.remove(key) != null) {
+				wasted++;
+			}
+			buffer.put(key, new BufferedValue(value.getValue(),
+					readVersions.get(value.getKey()), now + ttl));
+			issued++;
+		}
+		while (buffer.size() > MAX_BUFFERED) {
+			Iterator<BufferedValue> it = buffer.values().iterator();
+			it.next();
+			it.remove();
+			wasted++;
+		}
+		checkKillSwitch();
+	}
+
+	/**
+	 * Returns and removes the value of the given attribute of the given entity
+	 * prefetched for the given context, or null if there is none. Values of
+	 * attributes which have been updated since they were read are never
+	 * returned (nor counted as hit or wasted).
+	 */
+	public synchronized Tuple<Set<String>, DataType> take(
+			EvaluationCtx context, String entityId, String attributeId) {
+		lookups++;
+		BufferedValue value = buffer.remove(new BufferKey(context, entityId,
+				attributeId));
+		if (value == null) {
+			return null;
+		}
+		if (value.version != versions.get(entityId, attributeId)) {
+			issued--;
+			return null;
+		}
+		if (value.expiresAt < System.currentTimeMillis()) {
+			wasted++;
+			checkKillSwitch();
+			return null;
+		}
+		hits++;
+		return value.value;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Switches prefetching on or off. Switching it on resets the metrics, so
+	 * the kill-switch does not fire again immediately.
+	 */
+	public synchronized void setEnabled(boolean enabled) {
+		if (enabled && !this.enabled) {
+			issued = 0;
+			hits = 0;
+			wasted = 0;
+			lookups = 0;
+		}
+		this.enabled = enabled;
+		if (!enabled) {
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * The number of attribute values fetched speculatively.
+	 */
+	public synchronized long getIssuedCount() {
+		return issued;
+	}
+
+	/**
+	 * The number of requests served from a prefetched value.
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * The number of prefetched values which were never requested.
+	 */
+	public synchronized long getWastedCount() {
+		return wasted;
+	}
+
+	/**
+	 * The fraction of resolved prefetches which were actually requested.
+	 */
+	public synchronized double getPrecision() {
+		long resolved = hits + wasted;
+		return resolved == 0 ? 0 : ((double) hits) / resolved;
+	}
+
+	/**
+	 * The fraction of lookups (i.e., requests which could not be served from
+	 * the attribute cache) which were served from a prefetched value.
+	 */
+	public synchronized double getRecall() {
+		return lookups == 0 ? 0 : ((double) hits) / lookups;
+	}
+
+	/**
+	 * Registers the precision, recall, counts and state of this prefetcher as
+	 * gauges in the given registry, named with the given prefix. The prefix
+	 * must be unique for this prefetcher.
+	 */
+	public void registerMetrics(MetricRegistry registry, String prefix) {
+		registry.register(MetricRegistry.name(prefix, METRIC_NAMES[0]),
+				new Gauge<Double>() {
+					@Override
+					public Double getValue() {
+						return getPrecision();
+					}
+				});
+		registry.register(MetricRegistry.name(prefix, METRIC_NAMES[1]),
+				new Gauge<Double>() {
+					@Override
+					public Double getValue() {
+						return getRecall();
+					}
+				});
+		registry.register(MetricRegistry.name(prefix, METRIC_NAMES[2]),
+				new Gauge<Long>() {
+					@Override
+					public Long getValue() {
+						return getIssuedCount();
+					}
+				});
+		registry.register(MetricRegistry.name(prefix, METRIC_NAMES[3]),
+				new Gauge<Long>() {
+					@Override
+					public Long getValue() {
+						return getHitCount();
+					}
+				});
+		registry.register(MetricRegistry.name(prefix, METRIC_NAMES[4]),
+				new Gauge<Long>() {
+					@Override
+					public Long getValue() {
+						return getWastedCount();
+					}
+				});
+		registry.register(MetricRegistry.name(prefix, METRIC_NAMES[5]),
+				new Gauge<Boolean>() {
+					@Override
+					public Boolean getValue() {
+						return isEnabled();
+					}
+				});
+	}
+
+	/**
+	 * Removes the gauges registered by registerMetrics().
+	 */
+	public void unregisterMetrics(MetricRegistry registry, String prefix) {
+		for (String name : METRIC_NAMES) {
+			registry.remove(MetricRegistry.name(prefix, name));
+		}
+	}
+
+	private void evictExpired(long now) {
+		Iterator<BufferedValue> it = buffer.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().expiresAt >= now) {
+				// insertion order, so all following ones are younger
+				break;
+			}
+			it.remove();
+			wasted++;
+		}
+	}
+
+	private void checkKillSwitch() {
+		long resolved = hits + wasted;
+		if (enabled && resolved >= KILL_SWITCH_MIN_SAMPLES
+				&& ((double) wasted) / resolved > maxWasteRatio) {
+			logger.warning("Disabling attribute prefetching: " + wasted
+					+ " of " + resolved + " prefetched values were wasted");
+			enabled = false;
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Identifies a prefetched value: the context is compared by identity.
+	 */
+	private static class BufferKey {
+
+		private final EvaluationCtx context;
+
+		private final String entityId;
+
+		private final String attributeId;
+
+		private BufferKey(EvaluationCtx context, String entityId,
+				String attributeId) {
+			this.context = context;
+			this.entityId = entityId;
+			this.attributeId = attributeId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof BufferKey)) {
+				return false;
+			}
+			BufferKey other = (BufferKey) o;
+			return context == other.context && entityId.equals(other.entityId)
+					&& attributeId.equals(other.attributeId);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * System.identityHashCode(context) + entityId
+					.hashCode()) + attributeId.hashCode();
+		}
+	}
+
+	private static class BufferedValue {
+
+		private final Tuple<Set<String>, DataType> value;
+
+		private final long version;
+
+		private final long expiresAt;
+
+		private BufferedValue(Tuple<Set<String>, DataType> value, long version,
+				long expiresAt) {
+			this.value = value;
+			this.version = version;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet 
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *    
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.piputils;
+
+import java.util.Set;
+
+/**
+ * A single write to the attributes in the database: either replaces all
+ * values of an attribute of an entity or deletes them.
+ */
+public class AttributeUpdate {
+	private String entityId;
+	private String attributeId;
+	private Set<String> values;
+	
+	/**
+	 * Replaces all values of the given attribute of the given entity by the
+	 * given values.
+	 */
+	public AttributeUpdate(String entityId, String attributeId, Set<String> values) {
+		this.entityId = entityId;
+		this.attributeId = attributeId;
+		this.values = values;
+	}
+	
+	/**
+	 * Deletes all values of the given attribute of the given entity.
+	 */
+	public AttributeUpdate(String entityId, String attributeId) {
+		this(entityId, attributeId, null);
+	}
+	
+	public String getEntityId() {
+		return this.entityId;
+	}
+	
+	public String getAttributeId() {
+		return this.attributeId;
+	}
+	
+	/**
+	 * The new values, or null for a delete.
+	 */
+	public Set<String> getValues() {
+		return this.values;
+	}
+	
+	public boolean isDelete() {
+		return this.getValues() == null;
+	}
+}
@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet 
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *    
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.piputils;
+
+import java.util.Set;
+
+/**
+ * Gets notified of attribute updates written through
+ * {@link EntityDatabase#applyUpdates(Iterable)}, e.g., to keep in-process
+ * caches up to date.
+ */
+public interface AttributeUpdateListener {
+
+	/**
+	 * Called after the update of the given attribute of the given entity has
+	 * been committed. The given value is what getAttribute() would now return
+	 * for it: an empty set without type for deleted attributes.
+	 */
+	public void attributeUpdated(String entityId, String attributeId,
+			Tuple<Set<String>, DataType> value);
+
+}
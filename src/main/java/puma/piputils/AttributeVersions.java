@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet 
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *    
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.piputils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Version numbers of attributes, incremented whenever an attribute of an
+ * entity is updated. A value which was read from the database should only be
+ * cached if the version of its attribute did not change while it was being
+ * read; otherwise it may be older than the update.
+ * 
+ * The versions are striped over a fixed number of counters, so memory use is
+ * bounded. Attributes which share a counter merely cause some values not to be
+ * cached.
+ * 
+ * This class is thread-safe.
+ */
+public class AttributeVersions {
+
+	private static final int NB_STRIPES = 4096;
+
+	private final AtomicLongArray versions = new AtomicLongArray(NB_STRIPES);
+
+	/**
+	 * Returns the current version of the given attribute of the given entity.
+	 */
+	public long get(String entityId, String attributeId) {
+		return versions.get(stripe(entityId, attributeId));
+	}
+
+	/**
+	 * Marks the given attribute of the given entity as updated.
+	 */
+	public void increment(String entityId, String attributeId) {
+		versions.incrementAndGet(stripe(entityId, attributeId));
+	}
+
+	private static int stripe(String entityId, String attributeId) {
+		int hash = (entityId + "|" + attributeId).hashCode();
+		return (hash & 0x7fffffff) % NB_STRIPES;
+	}
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet 
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *    
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.piputils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded, online sketch of which attribute ids follow each other when
+ * attributes are requested for the same entity. Statistics are kept per
+ * designator type.
+ * 
+ * For every designator type, at most maxSources attribute ids are tracked
+ * (least recently observed ones are dropped first). For every such attribute
+ * id, at most maxSuccessors following attribute ids are counted using the
+ * Space-Saving scheme: when the list is full, the least frequent successor is
+ * replaced and its count is inherited, so frequent successors are never lost.
+ * 
+ * This class is thread-safe.
+ */
+public class CoAccessSketch {
+
+	private final int maxSources;
+
+	private final int maxSuccessors;
+
+	private final Map<Integer, Map<String, Successors>> sketches = new HashMap<Integer, Map<String, Successors>>();
+
+	public CoAccessSketch(int maxSources, int maxSuccessors) {
+		this.maxSources = maxSources;
+		this.maxSuccessors = maxSuccessors;
+	}
+
+	/**
+	 * Records that, for the given designator type, the attribute with id
+	 * nextId was requested right after the one with id previousId.
+	 */
+	public synchronized void record(int designatorType, String previousId,
+			String nextId) {
+		if (previousId.equals(nextId)) {
+			return;
+		}
+		Map<String, Successors> sketch = getSketch(designatorType);
+		Successors successors = sketch.get(previousId);
+		if (successors == null) {
+			successors = new Successors();
+			sketch.put(previousId, successors);
+		}
+		successors.add(nextId, maxSuccessors);
+	}
+
+	/**
+	 * Returns the attribute ids which are most likely to be requested after
+	 * the given one, most likely first. Only successors which have been
+	 * observed at least minSupport times and which followed attributeId in at
+	 * least a fraction minConfidence of the cases are returned.
+	 */
+	public synchronized List<String> predict(int designatorType,
+			String attributeId, long minSupport, double minConfidence,
+			int maxPredictions) {
+		List<String> result = new ArrayList<String>();
+		Map<String, Successors> sketch = sketches.get(designatorType);
+		if (sketch == null) {
+			return result;
+		}
+		Successors successors = sketch.get(attributeId);
+		if (successors == null || successors.total == 0) {
+			return result;
+		}
+		List<Map.Entry<String, Long>> candidates = new ArrayList<Map.Entry<String, Long>>(
+				successors.counts.entrySet());
+		Collections.sort(candidates, new Comparator<Map.Entry<String, Long>>() {
+			@Override
+			public int compare(Map.Entry<String, Long> o1,
+					Map.Entry<String, Long> o2) {
+				return o2.getValue().compareTo(o1.getValue());
+			}
+		});
+		for (Map.Entry<String, Long> candidate : candidates) {
+			if (result.size() >= maxPredictions) {
+				break;
+			}
+			long count = candidate.getValue();
+			if (count < minSupport
+					|| ((double) count) / successors.total < minConfidence) {
+				// the candidates are sorted, so none of the others will pass
+				break;
+			}
+			result.add(candidate.getKey());
+		}
+		return result;
+	}
+
+	/**
+	 * Forgets all statistics.
+	 */
+	public synchronized void clear() {
+		sketches.clear();
+	}
+
+	private Map<String, Successors> getSketch(int designatorType) {
+		Map<String, Successors> sketch = sketches.get(designatorType);
+		if (sketch == null) {
+			sketch = new LinkedHashMap<String, Successors>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, Successors> eldest) {
+					return size() > maxSources;
+				}
+			};
+			sketches.put(designatorType, sketch);
+		}
+		return sketch;
+	}
+
+	/**
+	 * The counted successors of a single attribute id.
+	 */
+	private static class Successors {
+
+		private long total = 0;
+
+		private final Map<String, Long> counts = new HashMap<String, Long>();
+
+		private void add(String id, int maxSuccessors) {
+			total++;
+			Long count = counts.get(id);
+			if (count != null) {
+				counts.put(id, count + 1);
+			} else if (counts.size() < maxSuccessors) {
+				counts.put(id, 1L);
+			} else {
+				// Space-Saving: replace the least frequent successor
+				String minId = null;
+				long minCount = Long.MAX_VALUE;
+				for (Map.Entry<String, Long> entry : counts.entrySet()) {
+					if (entry.getValue() < minCount) {
+						minId = entry.getKey();
+						minCount = entry.getValue();
+					}
+				}
+				counts.remove(minId);
+				counts.put(id, minCount + 1);
+			}
+		}
+	}
+}
@@ -26,12 +26,22 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.ParseException;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import puma.util.timing.TimerFactory;
+
+import com.codahale.metrics.Timer;
 import com.mchange.v2.c3p0.ComboPooledDataSource;
 
 public class EntityDatabase {
@@ -55,6 +65,8 @@ public class EntityDatabase {
 	private static final String DB_PASSWORD = "root";
 	private static final String DB_CONNECTION = "jdbc:mysql://localhost:3306/puma-mgmt";
 	private static final String CONNECTION_ID = "puma.attr.db.connection";
+	private static final String DB_DRIVER = "com.mysql.jdbc.Driver";
+	private static final String DRIVER_ID = "puma.attr.db.driver";
 
 	private static ComboPooledDataSource cpds;
 
@@ -64,7 +76,7 @@ public class EntityDatabase {
 	private EntityDatabase() {
 		try {
 			cpds = new ComboPooledDataSource();
-			cpds.setDriverClass("com.mysql.jdbc.Driver");
+			cpds.setDriverClass(System.getProperty(DRIVER_ID, DB_DRIVER));
 			if (System.getProperty(CONNECTION_ID) == null)
 				cpds.setJdbcUrl(DB_CONNECTION);
 			else
@@ -86,8 +98,15 @@ public class EntityDatabase {
 
 	private Connection conn = null;
 
+	private static final String GET_ATTRIBUTE_QUERY = "SELECT SP_ATTR.value, SP_ATTRTYPE.dataType FROM SP_ATTRTYPE USE INDEX (familyById) INNER JOIN SP_ATTR ON SP_ATTR.family_id=SP_ATTRTYPE.id AND SP_ATTRTYPE.xacmlIdentifier=? and SP_ATTR.user_id=?";
+
 	private PreparedStatement getStringAttributeStmt = null;
 	private PreparedStatement getSupportedXACMLAttributeIdsStmt = null;
+	/**
+	 * The statements of getAttributes(), prepared once per number of
+	 * attributes fetched at the same time.
+	 */
+	private Map<Integer, PreparedStatement> getAttributesStmts = new HashMap<Integer, PreparedStatement>();
 
 	/**
 	 * Sets up the connection to the database in read/write mode. Autocommit is
@@ -102,12 +121,14 @@ public class EntityDatabase {
 	 * disabled for this connection, so know you have to commit yourself!
 	 */
 	public void open(boolean readOnly) {
+		// the statements of getAttributes() belong to the previous connection
+		closeGetAttributesStmts();
 		try {
 			conn = cpds.getConnection();
 			conn.setReadOnly(readOnly);
 			conn.setAutoCommit(false);
 			conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
-			getStringAttributeStmt = this.conn.prepareStatement("SELECT SP_ATTR.value, SP_ATTRTYPE.dataType FROM SP_ATTRTYPE USE INDEX (familyById) INNER JOIN SP_ATTR ON SP_ATTR.family_id=SP_ATTRTYPE.id AND SP_ATTRTYPE.xacmlIdentifier=? and SP_ATTR.user_id=?");
+			getStringAttributeStmt = this.conn.prepareStatement(GET_ATTRIBUTE_QUERY);
 			getSupportedXACMLAttributeIdsStmt = this.conn.prepareStatement("SELECT xacmlIdentifier FROM SP_ATTRTYPE");
 		} catch (SQLException e) {
 			logger.log(Level.SEVERE, "Cannot open connection.", e);
@@ -136,6 +157,7 @@ public class EntityDatabase {
 			if (getSupportedXACMLAttributeIdsStmt != null) {
 				getSupportedXACMLAttributeIdsStmt.close();
 			}
+			closeGetAttributesStmts();
 			conn.close();
 		} catch (SQLException e) {
 			logger.log(Level.SEVERE,
@@ -175,13 +197,60 @@ public class EntityDatabase {
 	 * database. Does NOT commit or close.
 	 */
 	public Tuple<Set<String>, DataType> getAttribute(String entityId, String key) {
+		return getAttribute(getStringAttributeStmt, entityId, key);
+	}
+
+	/**
+	 * Fetches a string attribute from the database using a separate
+	 * connection from the pool instead of the connection of this database, so
+	 * this can safely be called from other threads. The connection is
+	 * committed and closed afterwards.
+	 */
+	public Tuple<Set<String>, DataType> getAttributeWithNewConnection(
+			String entityId, String key) {
+		Connection connection = null;
+		PreparedStatement stmt = null;
+		try {
+			connection = cpds.getConnection();
+			connection.setReadOnly(true);
+			connection.setAutoCommit(false);
+			connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+			stmt = connection.prepareStatement(GET_ATTRIBUTE_QUERY);
+			Tuple<Set<String>, DataType> result = getAttribute(stmt, entityId, key);
+			connection.commit();
+			return result;
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "Cannot execute query.", e);
+			throw new RuntimeException(e);
+		} finally {
+			if(stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLException e) {
+					// nothing to do
+					e.printStackTrace();
+				}
+			}
+			if(connection != null) {
+				try {
+					connection.close();
+				} catch (SQLException e) {
+					// nothing to do
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private Tuple<Set<String>, DataType> getAttribute(PreparedStatement stmt,
+			String entityId, String key) {
 		ResultSet queryResult = null;
 		try {
 			logger.info("Fetching attribute with family [" + key
 					+ "] and user id [" + entityId + "]...");
-			getStringAttributeStmt.setString(1, key);
-			getStringAttributeStmt.setLong(2, Long.valueOf(entityId));
-			queryResult = getStringAttributeStmt.executeQuery();
+			stmt.setString(1, key);
+			stmt.setLong(2, Long.valueOf(entityId));
+			queryResult = stmt.executeQuery();
 
 			// process the result
 			Set<String> r = new HashSet<String>();
@@ -214,6 +283,113 @@ public class EntityDatabase {
 		}
 	}
 	
+	/**
+	 * Fetches multiple attributes of the same entity from the database in a
+	 * single query using the connection of this database. Every given key is
+	 * present in the result; keys without values map to an empty set without
+	 * type, just like for getAttribute(). Keys are matched case-insensitively,
+	 * as the database does. Does NOT commit or close.
+	 */
+	public Map<String, Tuple<Set<String>, DataType>> getAttributes(
+			String entityId, Collection<String> keys) {
+		Map<String, Set<String>> values = new TreeMap<String, Set<String>>(String.CASE_INSENSITIVE_ORDER);
+		Map<String, DataType> types = new TreeMap<String, DataType>(String.CASE_INSENSITIVE_ORDER);
+		for (String key : keys) {
+			if (!values.containsKey(key)) {
+				values.put(key, new HashSet<String>());
+			}
+		}
+		ResultSet queryResult = null;
+		try {
+			logger.info("Fetching attributes with families " + keys
+					+ " and user id [" + entityId + "]...");
+			long userId = Long.valueOf(entityId);
+			PreparedStatement stmt = getAttributesStmt(values.size());
+			int index = 1;
+			for (String key : values.keySet()) {
+				stmt.setString(index++, key);
+			}
+			stmt.setLong(index, userId);
+			queryResult = stmt.executeQuery();
+
+			// process the result
+			String key, dType;
+			Set<String> keyValues;
+			while (queryResult.next()) {
+				key = queryResult.getString("xacmlIdentifier");
+				keyValues = values.get(key);
+				if (keyValues == null) {
+					logger.warning("Ignoring value of attribute " + key + " which was not requested");
+					continue;
+				}
+				dType = queryResult.getString("dataType");
+				if (dType != null) {
+					types.put(key, DataType.valueOf(dType));
+				}
+				keyValues.add(queryResult.getString("value"));
+			}
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "Cannot execute query.", e);
+			throw new RuntimeException(e);
+		} catch (NumberFormatException e) {
+			logger.log(Level.SEVERE, "Cannot execute query: could not find values of " + keys + " (entity id \'" + entityId + "\' is not parsable) - returning no values", e);
+			for (String k : values.keySet()) {
+				types.put(k, DataType.String);
+			}
+		} finally {
+			if(queryResult != null) {
+				try {
+					queryResult.close();
+				} catch (SQLException e) {
+					// nothing to do
+					e.printStackTrace();
+				}
+			}
+		}
+		Map<String, Tuple<Set<String>, DataType>> result = new HashMap<String, Tuple<Set<String>, DataType>>();
+		for (Map.Entry<String, Set<String>> entry : values.entrySet()) {
+			result.put(entry.getKey(), new Tuple<Set<String>, DataType>(
+					entry.getValue(), types.get(entry.getKey())));
+		}
+		return result;
+	}
+
+	/**
+	 * Closes and forgets all statements of getAttributes().
+	 */
+	private void closeGetAttributesStmts() {
+		for (PreparedStatement stmt : getAttributesStmts.values()) {
+			try {
+				stmt.close();
+			} catch (SQLException e) {
+				// nothing to do
+				e.printStackTrace();
+			}
+		}
+		getAttributesStmts.clear();
+	}
+
+	/**
+	 * Returns the statement of getAttributes() for the given number of
+	 * attributes, preparing it on the connection of this database the first
+	 * time.
+	 */
+	private PreparedStatement getAttributesStmt(int nbAttributes)
+			throws SQLException {
+		PreparedStatement stmt = getAttributesStmts.get(nbAttributes);
+		if (stmt == null) {
+			StringBuilder query = new StringBuilder(
+					"SELECT SP_ATTRTYPE.xacmlIdentifier, SP_ATTR.value, SP_ATTRTYPE.dataType FROM SP_ATTRTYPE USE INDEX (familyById) INNER JOIN SP_ATTR ON SP_ATTR.family_id=SP_ATTRTYPE.id AND SP_ATTRTYPE.xacmlIdentifier IN (");
+			for (int i = 0; i < nbAttributes; i++) {
+				query.append(i == 0 ? "?" : ",?");
+			}
+			query.append(") and SP_ATTR.user_id=?");
+			stmt = this.conn.prepareStatement(query.toString());
+			getAttributesStmts.put(nbAttributes, stmt);
+		}
+		return stmt;
+	}
+
 	/**
 	 * Fetches a string attribute from the database using the connection of this
 	 * database. Does NOT commit or close.
@@ -301,4 +477,259 @@ public class EntityDatabase {
 		return result;
 	}
 
+	/**************************
+	 * BULK UPDATES
+	 */
+
+	private static final String BATCH_SIZE_ID = "puma.attr.db.batchsize";
+	private static final String CHUNK_SIZE_ID = "puma.attr.db.chunksize";
+	private static final String BULK_UPDATE_TIMER_NAME = "database.bulkupdate";
+
+	private final List<AttributeUpdateListener> updateListeners = new CopyOnWriteArrayList<AttributeUpdateListener>();
+
+	/**
+	 * Registers a listener which is notified of every committed update
+	 * applied through applyUpdates().
+	 */
+	public void addUpdateListener(AttributeUpdateListener listener) {
+		updateListeners.add(listener);
+	}
+
+	public void removeUpdateListener(AttributeUpdateListener listener) {
+		updateListeners.remove(listener);
+	}
+
+	/**
+	 * Applies the given updates with the batch size and chunk size set in the
+	 * puma.attr.db.batchsize and puma.attr.db.chunksize system properties
+	 * (1000 and 10000 by default). See applyUpdates(Iterable, int, int).
+	 */
+	public long applyUpdates(Iterable<AttributeUpdate> updates) {
+		return applyUpdates(updates,
+				Integer.parseInt(System.getProperty(BATCH_SIZE_ID, "1000")),
+				Integer.parseInt(System.getProperty(CHUNK_SIZE_ID, "10000")));
+	}
+
+	/**
+	 * Applies the given updates using a separate connection from the pool.
+	 * The statements are sent to the database in JDBC batches of batchSize
+	 * statements and committed in transactions of chunkSize updates. After
+	 * every commit, the update listeners are notified of the committed
+	 * updates. Within a chunk, a later update of the same attribute of the
+	 * same entity overrides an earlier one, also if the entity ids are written
+	 * differently (e.g., "01" and "1"): listeners always get the entity id as
+	 * a plain decimal number. Updates of unknown attributes or
+	 * with an entity id which is not parsable are skipped. Listeners which
+	 * fail are logged and do not affect the other listeners or the following
+	 * chunks.
+	 * 
+	 * If a chunk fails, it is rolled back and a RuntimeException is thrown;
+	 * the chunks before it remain committed.
+	 * 
+	 * For MySQL, add rewriteBatchedStatements=true to the connection url to
+	 * have the driver send every batch as a single statement.
+	 * 
+	 * @return the number of distinct entity/attribute pairs written, summed
+	 *         over the chunks; overridden and skipped updates are not counted
+	 */
+	public long applyUpdates(Iterable<AttributeUpdate> updates, int batchSize,
+			int chunkSize) {
+		Connection connection = null;
+		PreparedStatement deleteStmt = null;
+		PreparedStatement insertStmt = null;
+		long applied = 0;
+		long start = System.currentTimeMillis();
+		try {
+			connection = cpds.getConnection();
+			connection.setReadOnly(false);
+			connection.setAutoCommit(false);
+			connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+			Map<String, Long> familyIds = new HashMap<String, Long>();
+			Map<String, DataType> dataTypes = new HashMap<String, DataType>();
+			getAttributeTypes(connection, familyIds, dataTypes);
+			deleteStmt = connection.prepareStatement("DELETE FROM SP_ATTR WHERE SP_ATTR.family_id=? and SP_ATTR.user_id=?");
+			insertStmt = connection.prepareStatement("INSERT INTO SP_ATTR (value, family_id, user_id) VALUES (?, ?, ?)");
+
+			// keyed on the parsed entity id, as the database is
+			Map<String, AttributeUpdate> chunk = new LinkedHashMap<String, AttributeUpdate>();
+			for (AttributeUpdate update : updates) {
+				if (!familyIds.containsKey(update.getAttributeId())) {
+					logger.warning("Skipping update of unknown attribute " + update.getAttributeId() + " (entity id: " + update.getEntityId() + ")");
+					continue;
+				}
+				String entityId;
+				try {
+					entityId = Long.toString(Long.parseLong(update.getEntityId()));
+				} catch (NumberFormatException e) {
+					logger.warning("Skipping update of attribute " + update.getAttributeId() + ": entity id \'" + update.getEntityId() + "\' is not parsable");
+					continue;
+				}
+				if (!entityId.equals(update.getEntityId())) {
+					update = new AttributeUpdate(entityId,
+							update.getAttributeId(), update.getValues());
+				}
+				chunk.put(entityId + "|" + update.getAttributeId(), update);
+				if (chunk.size() >= chunkSize) {
+					applied += applyChunk(connection, deleteStmt, insertStmt,
+							chunk.values(), familyIds, dataTypes, batchSize);
+					chunk.clear();
+				}
+			}
+			if (!chunk.isEmpty()) {
+				applied += applyChunk(connection, deleteStmt, insertStmt,
+						chunk.values(), familyIds, dataTypes, batchSize);
+			}
+			long duration = Math.max(System.currentTimeMillis() - start, 1);
+			logger.info("Applied " + applied + " attribute updates in "
+					+ duration + " ms (" + (applied * 1000 / duration)
+					+ " updates/s)");
+			return applied;
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "Cannot apply attribute updates, rolling back the current chunk (" + applied + " updates were committed before).", e);
+			if (connection != null) {
+				try {
+					connection.rollback();
+				} catch (SQLException e1) {
+					logger.log(Level.SEVERE, "Cannot roll back.", e1);
+				}
+			}
+			throw new RuntimeException(e);
+		} finally {
+			if(deleteStmt != null) {
+				try {
+					deleteStmt.close();
+				} catch (SQLException e) {
+					// nothing to do
+					e.printStackTrace();
+				}
+			}
+			if(insertStmt != null) {
+				try {
+					insertStmt.close();
+				} catch (SQLException e) {
+					// nothing to do
+					e.printStackTrace();
+				}
+			}
+			if(connection != null) {
+				try {
+					connection.close();
+				} catch (SQLException e) {
+					// nothing to do
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes and commits a single chunk of updates and notifies the update
+	 * listeners afterwards. Every update first deletes the current values, so
+	 * all deletes are executed before the inserts.
+	 */
+	private int applyChunk(Connection connection, PreparedStatement deleteStmt,
+			PreparedStatement insertStmt, Collection<AttributeUpdate> chunk,
+			Map<String, Long> familyIds, Map<String, DataType> dataTypes,
+			int batchSize) throws SQLException {
+		Timer.Context timerCtx = TimerFactory.getInstance().getTimer(getClass(), BULK_UPDATE_TIMER_NAME).time();
+		try {
+			int pending = 0;
+			for (AttributeUpdate update : chunk) {
+				deleteStmt.setLong(1, familyIds.get(update.getAttributeId()));
+				deleteStmt.setLong(2, Long.valueOf(update.getEntityId()));
+				deleteStmt.addBatch();
+				if (++pending >= batchSize) {
+					deleteStmt.executeBatch();
+					pending = 0;
+				}
+			}
+			if (pending > 0) {
+				deleteStmt.executeBatch();
+				pending = 0;
+			}
+			for (AttributeUpdate update : chunk) {
+				if (update.isDelete()) {
+					continue;
+				}
+				for (String value : update.getValues()) {
+					insertStmt.setString(1, value);
+					insertStmt.setLong(2, familyIds.get(update.getAttributeId()));
+					insertStmt.setLong(3, Long.valueOf(update.getEntityId()));
+					insertStmt.addBatch();
+					if (++pending >= batchSize) {
+						insertStmt.executeBatch();
+						pending = 0;
+					}
+				}
+			}
+			if (pending > 0) {
+				insertStmt.executeBatch();
+			}
+			connection.commit();
+		} finally {
+			timerCtx.stop();
+		}
+
+		// write through to the listeners now that the chunk is committed
+		for (AttributeUpdate update : chunk) {
+			Set<String> values = new HashSet<String>();
+			DataType type = null;
+			if (!update.isDelete() && !update.getValues().isEmpty()) {
+				values.addAll(update.getValues());
+				type = dataTypes.get(update.getAttributeId());
+			}
+			Tuple<Set<String>, DataType> value = new Tuple<Set<String>, DataType>(values, type);
+			for (AttributeUpdateListener listener : updateListeners) {
+				try {
+					listener.attributeUpdated(update.getEntityId(),
+							update.getAttributeId(), value);
+				} catch (RuntimeException e) {
+					logger.log(Level.SEVERE, "Update listener failed for attribute " + update.getAttributeId() + " of entity " + update.getEntityId() + " (the update is committed)", e);
+				}
+			}
+		}
+		return chunk.size();
+	}
+
+	/**
+	 * Fetches the family id and data type of every attribute type using the
+	 * given connection.
+	 */
+	private void getAttributeTypes(Connection connection,
+			Map<String, Long> familyIds, Map<String, DataType> dataTypes)
+			throws SQLException {
+		PreparedStatement stmt = null;
+		ResultSet queryResult = null;
+		try {
+			stmt = connection.prepareStatement("SELECT id, xacmlIdentifier, dataType FROM SP_ATTRTYPE");
+			queryResult = stmt.executeQuery();
+			String key, dType;
+			while (queryResult.next()) {
+				key = queryResult.getString("xacmlIdentifier");
+				familyIds.put(key, queryResult.getLong("id"));
+				dType = queryResult.getString("dataType");
+				if (dType != null) {
+					dataTypes.put(key, DataType.valueOf(dType));
+				}
+			}
+		} finally {
+			if(queryResult != null) {
+				try {
+					queryResult.close();
+				} catch (SQLException e) {
+					// nothing to do
+					e.printStackTrace();
+				}
+			}
+			if(stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLException e) {
+					// nothing to do
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
 }
@@ -26,14 +26,20 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import puma.util.timing.TimerFactory;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.sun.xacml.EvaluationCtx;
 import com.sun.xacml.attr.AttributeDesignator;
@@ -53,7 +59,8 @@ import com.sun.xacml.finder.AttributeFinderModule;
  * @author maartend
  * 
  */
-public class QueryAttributeFinderModule extends AttributeFinderModule {
+public class QueryAttributeFinderModule extends AttributeFinderModule
+		implements AttributeUpdateListener {
 
 	/**
 	 * The logger we'll use for all messages
@@ -91,10 +98,50 @@ public class QueryAttributeFinderModule extends AttributeFinderModule {
 
 	private EntityDatabase edb;
 	
+	private AttributePrefetcher prefetcher;
+	
+	private AttributeCache cache;
+	
+	private AttributeVersions versions;
+	
 	private static final String TIMER_NAME = "database.fetch";
+	
+	/**
+	 * The name of the shared metrics registry the prefetch gauges are
+	 * registered in.
+	 */
+	public static final String METRICS_REGISTRY = "puma";
+
+	/**
+	 * Used to give the metrics of every module a unique name.
+	 */
+	private static final AtomicInteger nbInstances = new AtomicInteger();
 
+	private final String metricsPrefix;
+
+	/**
+	 * Creates a new module which keeps its cached attribute values up to date
+	 * with the updates written through the given entity database. Call close()
+	 * when the module is no longer used.
+	 */
 	public QueryAttributeFinderModule(EntityDatabase edb) {
 		this.edb = edb;
+		this.versions = new AttributeVersions();
+		this.prefetcher = new AttributePrefetcher(this.versions);
+		this.metricsPrefix = MetricRegistry.name(getClass(), "instance"
+				+ nbInstances.incrementAndGet());
+		this.prefetcher.registerMetrics(
+				SharedMetricRegistries.getOrCreate(METRICS_REGISTRY), this.metricsPrefix);
+		this.cache = new AttributeCache(new AttributeLoader() {
+			@Override
+			public Tuple<Set<String>, DataType> load(String entityId,
+					String attributeId) {
+				// refreshes run on background threads
+				return QueryAttributeFinderModule.this.edb
+						.getAttributeWithNewConnection(entityId, attributeId);
+			}
+		}, this.versions);
+		this.edb.addUpdateListener(this);
 	}
 
 	public QueryAttributeFinderModule() {
@@ -249,7 +296,7 @@ public class QueryAttributeFinderModule extends AttributeFinderModule {
 		// now that we have the entity id: retrieve the necessary
 		// value from the database for this subject
 		List<AttributeValue> values = getAttributeValue(attributeId.toString(),
-				entityId);
+				entityId, designatorType, context);
 
 		if (values.isEmpty()) {
 			logger.info("No values received from the db for attribute #" + attributeId);
@@ -271,6 +318,101 @@ public class QueryAttributeFinderModule extends AttributeFinderModule {
 		return result;
 	}
 
+	/**
+	 * Same as getAttributeValue(attributeId, entityId), but also learns which
+	 * attributes are requested together in the given context and serves or
+	 * speculatively fetches the likely-next attributes of the same entity.
+	 */
+	public List<AttributeValue> getAttributeValue(String attributeId,
+			String entityId, int designatorType, EvaluationCtx context) {
+		Timer.Context timerCtx = TimerFactory.getInstance().getTimer(getClass(), TIMER_NAME).time();
+		this.prefetcher.recordRequest(context, designatorType, attributeId);
+		// read the version before the value, see AttributeVersions
+		long version = this.versions.get(entityId, attributeId);
+		Tuple<Set<String>, DataType> queryResult = this.cache.get(entityId,
+				attributeId);
+		if (queryResult == null) {
+			queryResult = this.prefetcher.take(context, entityId, attributeId);
+			if (queryResult == null) {
+				List<String> next = this.prefetcher.predict(context, designatorType,
+						entityId, attributeId);
+				// no need to prefetch what is cached already
+				for (Iterator<String> it = next.iterator(); it.hasNext();) {
+					if (this.cache.contains(entityId, it.next())) {
+						it.remove();
+					}
+				}
+				if (next.isEmpty()) {
+					queryResult = this.edb.getAttribute(entityId, attributeId);
+				} else {
+					// fetch the likely-next attributes in the same round trip
+					Map<String, Long> readVersions = new HashMap<String, Long>();
+					for (String id : next) {
+						readVersions.put(id, this.versions.get(entityId, id));
+					}
+					next.add(attributeId);
+					Map<String, Tuple<Set<String>, DataType>> queryResults = this.edb
+							.getAttributes(entityId, next);
+					queryResult = queryResults.remove(attributeId);
+					this.prefetcher.store(context, entityId, queryResults, readVersions);
+				}
+			}
+			this.cache.put(entityId, attributeId, queryResult, version);
+		}
+		List<AttributeValue> result = toAttributeValues(attributeId, entityId,
+				queryResult);
+		timerCtx.stop();
+		return result;
+	}
+
+	/**
+	 * Keeps the cached and prefetched values up to date with the updates
+	 * written through the entity database.
+	 */
+	@Override
+	public void attributeUpdated(String entityId, String attributeId,
+			Tuple<Set<String>, DataType> value) {
+		// first make sure concurrent reads of the old value are not cached;
+		// this also keeps the prefetcher from serving the old value
+		this.versions.increment(entityId, attributeId);
+		this.cache.update(entityId, attributeId, value);
+	}
+
+	/**
+	 * Stops keeping this module up to date with the entity database, stops
+	 * the background refreshes of its cache and unregisters its metrics.
+	 */
+	public void close() {
+		this.edb.removeUpdateListener(this);
+		this.cache.shutdown();
+		this.prefetcher.unregisterMetrics(
+				SharedMetricRegistries.getOrCreate(METRICS_REGISTRY), this.metricsPrefix);
+	}
+
+	/**
+	 * Returns the attribute prefetcher of this module, e.g., for inspecting
+	 * its precision and recall or for switching it on or off.
+	 */
+	public AttributePrefetcher getPrefetcher() {
+		return this.prefetcher;
+	}
+
+	/**
+	 * Returns the attribute cache of this module, e.g., for inspecting its
+	 * hit rate or for invalidating entries.
+	 */
+	public AttributeCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * Returns the attribute versions which guard the cache and the prefetcher
+	 * against values read before an update.
+	 */
+	AttributeVersions getVersions() {
+		return this.versions;
+	}
+
 	/**
 	 * This is the actual getAttributeValue(). It is separated in order
 	 * to wrap it in timer code.
@@ -285,8 +427,21 @@ public class QueryAttributeFinderModule extends AttributeFinderModule {
 		// we need
 		// to provide the entityId as well to first provide the organization
 		// owning the attribute family --> EXTRA JOIN
-		Tuple<Set<String>, DataType> queryResult = this.edb.getAttribute(entityId, attributeId);
-				
+		long version = this.versions.get(entityId, attributeId);
+		Tuple<Set<String>, DataType> queryResult = this.cache.get(entityId, attributeId);
+		if (queryResult == null) {
+			queryResult = this.edb.getAttribute(entityId, attributeId);
+			this.cache.put(entityId, attributeId, queryResult, version);
+		}
+		return toAttributeValues(attributeId, entityId, queryResult);
+	}
+
+	/**
+	 * Converts the given query result for the given attribute of the given
+	 * entity into XACML attribute values.
+	 */
+	private List<AttributeValue> toAttributeValues(String attributeId,
+			String entityId, Tuple<Set<String>, DataType> queryResult) {
 		List<AttributeValue> result = new ArrayList<AttributeValue>();
 		if (queryResult.hasType()) {
 			if (queryResult.getType().equals(DataType.String)) {
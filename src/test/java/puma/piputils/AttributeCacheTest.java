@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet 
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *    
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.piputils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AttributeCacheTest {
+
+	private static final String[] PROPERTIES = { "puma.attr.cache.enabled",
+			"puma.attr.cache.ttl", "puma.attr.cache.refreshratio",
+			"puma.attr.cache.maxentries", "puma.attr.cache.refreshthreads",
+			"puma.attr.cache.refreshqueue" };
+
+	private AttributeVersions versions;
+
+	private BlockingLoader loader;
+
+	private AttributeCache cache;
+
+	@Before
+	public void setUp() {
+		System.setProperty("puma.attr.cache.enabled", "true");
+		versions = new AttributeVersions();
+		loader = new BlockingLoader();
+	}
+
+	@After
+	public void tearDown() {
+		loader.release();
+		if (cache != null) {
+			cache.shutdown();
+		}
+		for (String property : PROPERTIES) {
+			System.clearProperty(property);
+		}
+	}
+
+	private AttributeCache newCache() {
+		cache = new AttributeCache(loader, versions);
+		return cache;
+	}
+
+	private static Tuple<Set<String>, DataType> value(String value) {
+		return new Tuple<Set<String>, DataType>(new HashSet<String>(
+				Arrays.asList(value)), DataType.String);
+	}
+
+	private void put(String entityId, String attributeId,
+			Tuple<Set<String>, DataType> value) {
+		cache.put(entityId, attributeId, value,
+				versions.get(entityId, attributeId));
+	}
+
+	private static void waitFor(Condition condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.holds()) {
+			assertTrue("timed out", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void testDisabledByDefault() {
+		System.clearProperty("puma.attr.cache.enabled");
+		newCache();
+		Tuple<Set<String>, DataType> value = value("a");
+		put("1", "a", value);
+
+		assertNull(cache.get("1", "a"));
+		assertFalse(cache.contains("1", "a"));
+	}
+
+	@Test
+	public void testStaleHitIsServedWhileRefreshing() throws Exception {
+		System.setProperty("puma.attr.cache.refreshratio", "0");
+		newCache();
+		Tuple<Set<String>, DataType> old = value("old");
+		put("1", "a", old);
+
+		// the refresh blocks, but the stale value is returned right away
+		assertSame(old, cache.get("1", "a"));
+		loader.awaitCalls(1);
+		assertSame(old, cache.get("1", "a"));
+		assertSame(old, cache.get("1", "a"));
+
+		loader.release();
+		waitFor(new Condition() {
+			@Override
+			public boolean holds() {
+				return cache.getRefreshCount() == 1;
+			}
+		});
+		// at most one refresh per entry was in flight
+		assertEquals(1, loader.calls.get());
+		assertEquals(loader.value("1", "a").getData(), cache.get("1", "a")
+				.getData());
+		assertEquals(0, cache.getMissCount());
+	}
+
+	@Test
+	public void testRefreshesWhichDoNotFitAreDropped() throws Exception {
+		System.setProperty("puma.attr.cache.refreshratio", "0");
+		System.setProperty("puma.attr.cache.refreshthreads", "1");
+		System.setProperty("puma.attr.cache.refreshqueue", "1");
+		newCache();
+		put("1", "a", value("a"));
+		put("1", "b", value("b"));
+		put("1", "c", value("c"));
+
+		// a runs, b is queued and c does not fit
+		cache.get("1", "a");
+		loader.awaitCalls(1);
+		cache.get("1", "b");
+		assertNotNull(cache.get("1", "c"));
+		assertEquals(1, cache.getDroppedRefreshCount());
+
+		loader.release();
+		waitFor(new Condition() {
+			@Override
+			public boolean holds() {
+				return cache.getRefreshCount() == 2;
+			}
+		});
+		// a dropped refresh is tried again on a later access
+		cache.get("1", "c");
+		waitFor(new Condition() {
+			@Override
+			public boolean holds() {
+				return cache.getRefreshCount() == 3;
+			}
+		});
+		assertEquals(3, loader.calls.get());
+	}
+
+	@Test
+	public void testColdEntriesExpire() throws Exception {
+		System.setProperty("puma.attr.cache.ttl", "50");
+		System.setProperty("puma.attr.cache.refreshratio", "1.0");
+		newCache();
+		put("1", "a", value("a"));
+		assertTrue(cache.contains("1", "a"));
+
+		Thread.sleep(100);
+		assertFalse(cache.contains("1", "a"));
+		assertNull(cache.get("1", "a"));
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0, loader.calls.get());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		System.setProperty("puma.attr.cache.maxentries", "2");
+		newCache();
+		put("1", "a", value("a"));
+		put("1", "b", value("b"));
+		cache.get("1", "a");
+		put("1", "c", value("c"));
+
+		assertTrue(cache.contains("1", "a"));
+		assertFalse(cache.contains("1", "b"));
+		assertTrue(cache.contains("1", "c"));
+	}
+
+	@Test
+	public void testDoesNotCacheValuesReadBeforeAnUpdate() {
+		newCache();
+		long version = versions.get("1", "a");
+		versions.increment("1", "a");
+		cache.put("1", "a", value("old"), version);
+
+		assertFalse(cache.contains("1", "a"));
+	}
+
+	@Test
+	public void testUpdateOnlyReplacesCachedValues() {
+		newCache();
+		put("1", "a", value("old"));
+		Tuple<Set<String>, DataType> updated = value("new");
+		cache.update("1", "a", updated);
+		cache.update("1", "b", value("b"));
+
+		assertSame(updated, cache.get("1", "a"));
+		assertFalse(cache.contains("1", "b"));
+	}
+
+	private interface Condition {
+		boolean holds();
+	}
+
+	/**
+	 * Counts its calls and blocks them until released.
+	 */
+	private static class BlockingLoader implements AttributeLoader {
+
+		private final AtomicInteger calls = new AtomicInteger();
+
+		private final CountDownLatch released = new CountDownLatch(1);
+
+		@Override
+		public Tuple<Set<String>, DataType> load(String entityId,
+				String attributeId) {
+			calls.incrementAndGet();
+			try {
+				released.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return value(entityId, attributeId);
+		}
+
+		private Tuple<Set<String>, DataType> value(String entityId,
+				String attributeId) {
+			return AttributeCacheTest.value("loaded " + entityId + "|"
+					+ attributeId);
+		}
+
+		private void awaitCalls(final int n) throws InterruptedException {
+			waitFor(new Condition() {
+				@Override
+				public boolean holds() {
+					return calls.get() >= n;
+				}
+			});
+		}
+
+		private void release() {
+			released.countDown();
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet 
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *    
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.piputils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.xacml.EvaluationCtx;
+
+public class AttributePrefetcherTest {
+
+	private AttributeVersions versions;
+
+	@Before
+	public void setUp() {
+		System.setProperty("puma.attr.prefetch.minsupport", "2");
+		System.setProperty("puma.attr.prefetch.minconfidence", "0.5");
+		System.setProperty("puma.attr.prefetch.ttl", "60000");
+		versions = new AttributeVersions();
+	}
+
+	@After
+	public void tearDown() {
+		System.clearProperty("puma.attr.prefetch.minsupport");
+		System.clearProperty("puma.attr.prefetch.minconfidence");
+		System.clearProperty("puma.attr.prefetch.ttl");
+	}
+
+	private static Tuple<Set<String>, DataType> value(String value) {
+		return new Tuple<Set<String>, DataType>(new HashSet<String>(
+				Arrays.asList(value)), DataType.String);
+	}
+
+	private void store(AttributePrefetcher prefetcher, EvaluationCtx context,
+			String entityId, String... attributeIds) {
+		Map<String, Tuple<Set<String>, DataType>> values = new HashMap<String, Tuple<Set<String>, DataType>>();
+		Map<String, Long> readVersions = new HashMap<String, Long>();
+		for (String attributeId : attributeIds) {
+			values.put(attributeId, value(attributeId));
+			readVersions.put(attributeId, versions.get(entityId, attributeId));
+		}
+		prefetcher.store(context, entityId, values, readVersions);
+	}
+
+	@Test
+	public void testLearnsFromRequestsInTheSameContext() {
+		AttributePrefetcher prefetcher = new AttributePrefetcher(versions);
+		for (int i = 0; i < 2; i++) {
+			EvaluationCtx context = EvaluationContexts.newContext();
+			prefetcher.recordRequest(context, 0, "a");
+			prefetcher.recordRequest(context, 0, "b");
+		}
+		// a and b in different contexts do not count
+		prefetcher.recordRequest(EvaluationContexts.newContext(), 0, "a");
+		prefetcher.recordRequest(EvaluationContexts.newContext(), 0, "c");
+
+		assertEquals(Arrays.asList("b"), prefetcher.predict(
+				EvaluationContexts.newContext(), 0, "1", "a"));
+		assertTrue(prefetcher.predict(EvaluationContexts.newContext(), 1, "1",
+				"a").isEmpty());
+	}
+
+	@Test
+	public void testPredictSkipsValuesPrefetchedForTheSameContext() {
+		AttributePrefetcher prefetcher = new AttributePrefetcher(versions);
+		EvaluationCtx context = EvaluationContexts.newContext();
+		for (int i = 0; i < 2; i++) {
+			prefetcher.recordRequest(context, 0, "a");
+			prefetcher.recordRequest(context, 0, "b");
+		}
+		store(prefetcher, context, "1", "b");
+
+		assertTrue(prefetcher.predict(context, 0, "1", "a").isEmpty());
+		assertEquals(Arrays.asList("b"), prefetcher.predict(
+				EvaluationContexts.newContext(), 0, "1", "a"));
+	}
+
+	@Test
+	public void testValuesOnlyServeTheirOwnContext() {
+		AttributePrefetcher prefetcher = new AttributePrefetcher(versions);
+		EvaluationCtx context = EvaluationContexts.newContext();
+		store(prefetcher, context, "1", "b");
+
+		assertNull(prefetcher.take(EvaluationContexts.newContext(), "1", "b"));
+		assertNull(prefetcher.take(context, "2", "b"));
+		assertEquals(value("b").getData(), prefetcher.take(context, "1", "b")
+				.getData());
+		// values are served once
+		assertNull(prefetcher.take(context, "1", "b"));
+	}
+
+	@Test
+	public void testUpdatedValuesAreNotServed() {
+		AttributePrefetcher prefetcher = new AttributePrefetcher(versions);
+		EvaluationCtx context = EvaluationContexts.newContext();
+		store(prefetcher, context, "1", "b");
+		versions.increment("1", "b");
+
+		assertNull(prefetcher.take(context, "1", "b"));
+		assertEquals(0, prefetcher.getIssuedCount());
+		assertEquals(0, prefetcher.getWastedCount());
+	}
+
+	@Test
+	public void testPrecisionAndRecall() {
+		AttributePrefetcher prefetcher = new AttributePrefetcher(versions);
+		EvaluationCtx context = EvaluationContexts.newContext();
+		store(prefetcher, context, "1", "a", "b", "c", "d");
+		// prefetching d again wastes the first one
+		store(prefetcher, context, "1", "d");
+
+		assertSame(null, prefetcher.take(context, "1", "x"));
+		prefetcher.take(context, "1", "a");
+		prefetcher.take(context, "1", "b");
+		prefetcher.take(context, "1", "c");
+
+		assertEquals(5, prefetcher.getIssuedCount());
+		assertEquals(3, prefetcher.getHitCount());
+		assertEquals(1, prefetcher.getWastedCount());
+		assertEquals(0.75, prefetcher.getPrecision(), 1e-9);
+		assertEquals(0.75, prefetcher.getRecall(), 1e-9);
+	}
+
+	@Test
+	public void testKillSwitch() {
+		System.setProperty("puma.attr.prefetch.ttl", "-1");
+		AttributePrefetcher prefetcher = new AttributePrefetcher(versions);
+		EvaluationCtx context = EvaluationContexts.newContext();
+		String[] attributeIds = new String[100];
+		for (int i = 0; i < attributeIds.length; i++) {
+			attributeIds[i] = "attr" + i;
+		}
+		store(prefetcher, context, "1", attributeIds);
+
+		// every value has expired already, so every lookup wastes one
+		for (int i = 0; i < 99; i++) {
+			assertNull(prefetcher.take(context, "1", attributeIds[i]));
+		}
+		assertTrue(prefetcher.isEnabled());
+		assertNull(prefetcher.take(context, "1", attributeIds[99]));
+		assertFalse(prefetcher.isEnabled());
+		assertEquals(100, prefetcher.getWastedCount());
+
+		// learning continues, but nothing is predicted any more
+		for (int i = 0; i < 2; i++) {
+			prefetcher.recordRequest(context, 0, "a");
+			prefetcher.recordRequest(context, 0, "b");
+		}
+		assertTrue(prefetcher.predict(context, 0, "1", "a").isEmpty());
+
+		prefetcher.setEnabled(true);
+		assertEquals(0, prefetcher.getWastedCount());
+		assertEquals(Arrays.asList("b"), prefetcher.predict(context, 0, "1", "a"));
+	}
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet 
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *    
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.piputils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class CoAccessSketchTest {
+
+	private static void record(CoAccessSketch sketch, String previousId,
+			String nextId, int times) {
+		for (int i = 0; i < times; i++) {
+			sketch.record(0, previousId, nextId);
+		}
+	}
+
+	@Test
+	public void testPredictsMostFrequentSuccessorsFirst() {
+		CoAccessSketch sketch = new CoAccessSketch(10, 10);
+		record(sketch, "a", "c", 3);
+		record(sketch, "a", "b", 6);
+		record(sketch, "a", "d", 1);
+
+		assertEquals(Arrays.asList("b", "c", "d"), sketch.predict(0, "a", 1, 0, 10));
+		assertEquals(Arrays.asList("b"), sketch.predict(0, "a", 1, 0, 1));
+	}
+
+	@Test
+	public void testMinSupportAndMinConfidence() {
+		CoAccessSketch sketch = new CoAccessSketch(10, 10);
+		record(sketch, "a", "b", 6);
+		record(sketch, "a", "c", 3);
+		record(sketch, "a", "d", 1);
+
+		// c followed a in 3 of 10 cases
+		assertEquals(Arrays.asList("b", "c"), sketch.predict(0, "a", 2, 0, 10));
+		assertEquals(Arrays.asList("b", "c"), sketch.predict(0, "a", 1, 0.3, 10));
+		assertEquals(Arrays.asList("b"), sketch.predict(0, "a", 1, 0.31, 10));
+		assertEquals(Arrays.asList("b"), sketch.predict(0, "a", 4, 0, 10));
+		assertTrue(sketch.predict(0, "a", 7, 0, 10).isEmpty());
+		assertTrue(sketch.predict(0, "a", 1, 0.7, 10).isEmpty());
+	}
+
+	@Test
+	public void testSpaceSavingReplacesLeastFrequentSuccessor() {
+		CoAccessSketch sketch = new CoAccessSketch(10, 2);
+		record(sketch, "a", "b", 3);
+		record(sketch, "a", "c", 1);
+		// d replaces c and inherits its count: 1 + 1
+		record(sketch, "a", "d", 1);
+
+		assertEquals(Arrays.asList("b", "d"), sketch.predict(0, "a", 1, 0, 10));
+		assertEquals(Arrays.asList("b"), sketch.predict(0, "a", 3, 0, 10));
+		// d now counts 3 as well, c is gone
+		record(sketch, "a", "d", 1);
+		assertEquals(2, sketch.predict(0, "a", 3, 0, 10).size());
+		assertTrue(!sketch.predict(0, "a", 1, 0, 10).contains("c"));
+	}
+
+	@Test
+	public void testForgetsLeastRecentlyObservedSources() {
+		CoAccessSketch sketch = new CoAccessSketch(2, 10);
+		record(sketch, "a", "x", 1);
+		record(sketch, "b", "x", 1);
+		record(sketch, "a", "x", 1);
+		record(sketch, "c", "x", 1);
+
+		assertEquals(Arrays.asList("x"), sketch.predict(0, "a", 1, 0, 10));
+		assertTrue(sketch.predict(0, "b", 1, 0, 10).isEmpty());
+		assertEquals(Arrays.asList("x"), sketch.predict(0, "c", 1, 0, 10));
+	}
+
+	@Test
+	public void testKeepsDesignatorTypesApart() {
+		CoAccessSketch sketch = new CoAccessSketch(10, 10);
+		record(sketch, "a", "b", 5);
+
+		assertTrue(sketch.predict(1, "a", 1, 0, 10).isEmpty());
+	}
+
+	@Test
+	public void testIgnoresRepeatedRequests() {
+		CoAccessSketch sketch = new CoAccessSketch(10, 10);
+		record(sketch, "a", "a", 5);
+
+		assertTrue(sketch.predict(0, "a", 1, 0, 10).isEmpty());
+	}
+}
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet 
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *    
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.piputils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static puma.piputils.TestDatabase.connect;
+import static puma.piputils.TestDatabase.fetch;
+import static puma.piputils.TestDatabase.values;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests EntityDatabase.applyUpdates() against an embedded H2 database.
+ * 
+ * The bulk load test writes puma.attr.bench.rows rows, 1000 by default; the
+ * bench profile (mvn test -Pbench) raises this to a million.
+ */
+public class EntityDatabaseBulkUpdateTest {
+
+	private static EntityDatabase edb;
+
+	private RecordingListener listener;
+
+	@BeforeClass
+	public static void setUpDatabase() throws SQLException {
+		edb = TestDatabase.setUp();
+	}
+
+	@Before
+	public void setUp() throws SQLException {
+		TestDatabase.clear();
+		listener = new RecordingListener();
+		edb.addUpdateListener(listener);
+	}
+
+	@After
+	public void tearDown() {
+		edb.removeUpdateListener(listener);
+	}
+
+	@Test
+	public void testLastWriteWinsWithinChunk() throws SQLException {
+		List<AttributeUpdate> updates = new ArrayList<AttributeUpdate>();
+		updates.add(new AttributeUpdate("1", "subject:role", values("a")));
+		updates.add(new AttributeUpdate("1", "subject:role", values("b", "c")));
+		updates.add(new AttributeUpdate("1", "subject:tenant", values("t")));
+		updates.add(new AttributeUpdate("1", "subject:tenant"));
+
+		assertEquals(2, edb.applyUpdates(updates, 10, 10));
+		assertEquals(values("b", "c"), fetch("1", "subject:role"));
+		assertEquals(values(), fetch("1", "subject:tenant"));
+
+		Tuple<Set<String>, DataType> role = listener.updates.get("1|subject:role");
+		assertEquals(values("b", "c"), role.getData());
+		assertEquals(DataType.String, role.getType());
+		Tuple<Set<String>, DataType> tenant = listener.updates.get("1|subject:tenant");
+		assertEquals(values(), tenant.getData());
+		assertNull(tenant.getType());
+	}
+
+	@Test
+	public void testUpdateReplacesExistingValues() throws SQLException {
+		edb.applyUpdates(Arrays.asList(new AttributeUpdate("1", "subject:age", values("30"))), 10, 10);
+		edb.applyUpdates(Arrays.asList(new AttributeUpdate("1", "subject:age", values("31"))), 10, 10);
+
+		assertEquals(values("31"), fetch("1", "subject:age"));
+		assertEquals(DataType.Integer, listener.updates.get("1|subject:age").getType());
+	}
+
+	@Test
+	public void testSkipsUnknownAttributesAndEntities() throws SQLException {
+		List<AttributeUpdate> updates = new ArrayList<AttributeUpdate>();
+		updates.add(new AttributeUpdate("1", "subject:unknown", values("a")));
+		updates.add(new AttributeUpdate("not-a-number", "subject:role", values("a")));
+		updates.add(new AttributeUpdate("2", "subject:role", values("a")));
+
+		assertEquals(1, edb.applyUpdates(updates, 10, 10));
+		assertEquals(values("a"), fetch("2", "subject:role"));
+		assertEquals(1, listener.updates.size());
+	}
+
+	@Test
+	public void testDeduplicatesOnTheParsedEntityId() throws SQLException {
+		List<AttributeUpdate> updates = new ArrayList<AttributeUpdate>();
+		updates.add(new AttributeUpdate("01", "subject:role", values("a")));
+		updates.add(new AttributeUpdate("1", "subject:role", values("b")));
+		updates.add(new AttributeUpdate("002", "subject:role", values("c")));
+
+		assertEquals(2, edb.applyUpdates(updates, 10, 10));
+		assertEquals(values("b"), fetch("1", "subject:role"));
+		assertEquals(values("c"), fetch("2", "subject:role"));
+		assertEquals(2, listener.updates.size());
+		assertEquals(values("b"), listener.updates.get("1|subject:role").getData());
+		assertEquals(values("c"), listener.updates.get("2|subject:role").getData());
+	}
+
+	@Test
+	public void testFailingChunkIsRolledBack() throws SQLException {
+		char[] tooLong = new char[300];
+		Arrays.fill(tooLong, 'x');
+		List<AttributeUpdate> updates = new ArrayList<AttributeUpdate>();
+		updates.add(new AttributeUpdate("1", "subject:role", values("a")));
+		updates.add(new AttributeUpdate("2", "subject:role", values("b")));
+		updates.add(new AttributeUpdate("3", "subject:role", values("c")));
+		updates.add(new AttributeUpdate("4", "subject:role", values(new String(tooLong))));
+
+		try {
+			edb.applyUpdates(updates, 1, 2);
+			fail("The second chunk should have failed");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		assertEquals(values("a"), fetch("1", "subject:role"));
+		assertEquals(values("b"), fetch("2", "subject:role"));
+		assertEquals(values(), fetch("3", "subject:role"));
+		assertEquals(values(), fetch("4", "subject:role"));
+		assertEquals(2, listener.updates.size());
+		assertTrue(listener.updates.containsKey("1|subject:role"));
+		assertTrue(listener.updates.containsKey("2|subject:role"));
+	}
+
+	@Test
+	public void testFailingListenerDoesNotAbortUpdates() throws SQLException {
+		AttributeUpdateListener failing = new AttributeUpdateListener() {
+			@Override
+			public void attributeUpdated(String entityId, String attributeId,
+					Tuple<Set<String>, DataType> value) {
+				throw new IllegalStateException("failing on purpose");
+			}
+		};
+		edb.removeUpdateListener(listener);
+		edb.addUpdateListener(failing);
+		edb.addUpdateListener(listener);
+		try {
+			List<AttributeUpdate> updates = new ArrayList<AttributeUpdate>();
+			updates.add(new AttributeUpdate("1", "subject:role", values("a")));
+			updates.add(new AttributeUpdate("2", "subject:role", values("b")));
+
+			assertEquals(2, edb.applyUpdates(updates, 1, 1));
+		} finally {
+			edb.removeUpdateListener(failing);
+		}
+		assertEquals(values("b"), fetch("2", "subject:role"));
+		assertEquals(2, listener.updates.size());
+	}
+
+	@Test
+	public void testBulkLoad() throws SQLException {
+		edb.removeUpdateListener(listener);
+		final int nbRows = Integer.parseInt(System.getProperty("puma.attr.bench.rows", "1000"));
+		Iterable<AttributeUpdate> updates = new Iterable<AttributeUpdate>() {
+			@Override
+			public Iterator<AttributeUpdate> iterator() {
+				return new Iterator<AttributeUpdate>() {
+					private int next = 0;
+
+					@Override
+					public boolean hasNext() {
+						return next < nbRows;
+					}
+
+					@Override
+					public AttributeUpdate next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						String entityId = Integer.toString(next++);
+						return new AttributeUpdate(entityId, "subject:role", values("role" + entityId));
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+
+		// applyUpdates() logs the throughput
+		assertEquals(nbRows, edb.applyUpdates(updates));
+
+		Connection conn = connect();
+		try {
+			Statement stmt = conn.createStatement();
+			ResultSet result = stmt.executeQuery("SELECT COUNT(*) FROM SP_ATTR");
+			result.next();
+			assertEquals(nbRows, result.getLong(1));
+			result.close();
+			stmt.close();
+		} finally {
+			conn.close();
+		}
+		assertEquals(values("role42"), fetch("42", "subject:role"));
+	}
+
+	private static class RecordingListener implements AttributeUpdateListener {
+
+		private final Map<String, Tuple<Set<String>, DataType>> updates = new HashMap<String, Tuple<Set<String>, DataType>>();
+
+		@Override
+		public synchronized void attributeUpdated(String entityId,
+				String attributeId, Tuple<Set<String>, DataType> value) {
+			updates.put(entityId + "|" + attributeId, value);
+		}
+	}
+}
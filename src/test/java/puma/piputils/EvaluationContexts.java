@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet 
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *    
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.piputils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.sun.xacml.EvaluationCtx;
+
+/**
+ * Creates evaluation contexts which only have an identity, for tests which
+ * merely use them to tell requests apart.
+ */
+class EvaluationContexts {
+
+	static EvaluationCtx newContext() {
+		return (EvaluationCtx) Proxy.newProxyInstance(
+				EvaluationCtx.class.getClassLoader(),
+				new Class<?>[] { EvaluationCtx.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("hashCode")) {
+							return System.identityHashCode(proxy);
+						} else if (method.getName().equals("equals")) {
+							return proxy == args[0];
+						} else if (method.getName().equals("toString")) {
+							return "context@" + System.identityHashCode(proxy);
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+}
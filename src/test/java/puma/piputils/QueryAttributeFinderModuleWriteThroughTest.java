@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet 
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *    
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.piputils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static puma.piputils.TestDatabase.values;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.xacml.EvaluationCtx;
+
+/**
+ * Tests that updates applied through EntityDatabase.applyUpdates() are
+ * written through to the cache and the prefetcher of a
+ * QueryAttributeFinderModule.
+ */
+public class QueryAttributeFinderModuleWriteThroughTest {
+
+	private static EntityDatabase edb;
+
+	private QueryAttributeFinderModule module;
+
+	@BeforeClass
+	public static void setUpDatabase() throws SQLException {
+		edb = TestDatabase.setUp();
+	}
+
+	@Before
+	public void setUp() throws SQLException {
+		TestDatabase.clear();
+		System.setProperty("puma.attr.cache.enabled", "true");
+		module = new QueryAttributeFinderModule(edb);
+	}
+
+	@After
+	public void tearDown() {
+		module.close();
+		System.clearProperty("puma.attr.cache.enabled");
+	}
+
+	private static Tuple<Set<String>, DataType> value(String... values) {
+		return new Tuple<Set<String>, DataType>(values(values), DataType.String);
+	}
+
+	/**
+	 * Caches the given value as if it was read from the database.
+	 */
+	private void cache(String entityId, String attributeId,
+			Tuple<Set<String>, DataType> value) {
+		module.getCache().put(entityId, attributeId, value,
+				module.getVersions().get(entityId, attributeId));
+	}
+
+	private void update(String entityId, String attributeId, String... values) {
+		edb.applyUpdates(Arrays.asList(new AttributeUpdate(entityId,
+				attributeId, values(values))), 10, 10);
+	}
+
+	@Test
+	public void testReplacesCachedValueAfterCommit() {
+		cache("1", "subject:role", value("old"));
+		update("1", "subject:role", "new");
+
+		Tuple<Set<String>, DataType> cached = module.getCache().get("1",
+				"subject:role");
+		assertEquals(values("new"), cached.getData());
+		assertEquals(DataType.String, cached.getType());
+
+		edb.applyUpdates(Arrays.asList(new AttributeUpdate("1",
+				"subject:role")), 10, 10);
+		cached = module.getCache().get("1", "subject:role");
+		assertEquals(values(), cached.getData());
+		assertNull(cached.getType());
+	}
+
+	@Test
+	public void testDoesNotAddUncachedValues() {
+		update("1", "subject:tenant", "t");
+
+		assertFalse(module.getCache().contains("1", "subject:tenant"));
+	}
+
+	@Test
+	public void testDropsPrefetchedValues() {
+		EvaluationCtx context = EvaluationContexts.newContext();
+		Map<String, Tuple<Set<String>, DataType>> prefetched = new HashMap<String, Tuple<Set<String>, DataType>>();
+		prefetched.put("subject:role", value("old"));
+		Map<String, Long> readVersions = new HashMap<String, Long>();
+		readVersions.put("subject:role",
+				module.getVersions().get("1", "subject:role"));
+		module.getPrefetcher().store(context, "1", prefetched, readVersions);
+
+		update("1", "subject:role", "new");
+
+		assertNull(module.getPrefetcher().take(context, "1", "subject:role"));
+	}
+
+	@Test
+	public void testDoesNotCacheReadsStartedBeforeAnUpdate() {
+		long version = module.getVersions().get("1", "subject:role");
+		// the update commits while the old value is being read
+		update("1", "subject:role", "new");
+		module.getCache().put("1", "subject:role", value("old"), version);
+
+		assertFalse(module.getCache().contains("1", "subject:role"));
+	}
+
+	@Test
+	public void testClosedModuleIsNoLongerUpdated() {
+		Tuple<Set<String>, DataType> old = value("old");
+		cache("1", "subject:role", old);
+		module.close();
+		update("1", "subject:role", "new");
+
+		assertSame(old, module.getCache().get("1", "subject:role"));
+	}
+}
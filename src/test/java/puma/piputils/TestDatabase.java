@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet 
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *    
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.piputils;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Sets up the embedded H2 database behind the EntityDatabase singleton for
+ * the tests which need one. Every test class calls setUp(), whichever runs
+ * first creates the tables.
+ */
+class TestDatabase {
+
+	private static final String DB_CONNECTION = "jdbc:h2:mem:puma-mgmt;DB_CLOSE_DELAY=-1";
+	private static final String DB_USER = "root";
+	private static final String DB_PASSWORD = "root";
+
+	/**
+	 * Creates the tables and the attribute types subject:role (String),
+	 * subject:tenant (String) and subject:age (Integer) if needed and returns
+	 * the entity database.
+	 */
+	static synchronized EntityDatabase setUp() throws SQLException {
+		System.setProperty("puma.attr.db.connection", DB_CONNECTION);
+		System.setProperty("puma.attr.db.driver", "org.h2.Driver");
+		Connection conn = connect();
+		try {
+			Statement stmt = conn.createStatement();
+			stmt.execute("CREATE TABLE IF NOT EXISTS SP_ATTRTYPE (id BIGINT PRIMARY KEY, xacmlIdentifier VARCHAR(255), dataType VARCHAR(32))");
+			stmt.execute("CREATE TABLE IF NOT EXISTS SP_ATTR (id BIGINT AUTO_INCREMENT PRIMARY KEY, value VARCHAR(255), family_id BIGINT, user_id BIGINT)");
+			stmt.execute("CREATE INDEX IF NOT EXISTS attrByFamilyAndUser ON SP_ATTR (family_id, user_id)");
+			stmt.execute("MERGE INTO SP_ATTRTYPE VALUES (1, 'subject:role', 'String'), (2, 'subject:tenant', 'String'), (3, 'subject:age', 'Integer')");
+			stmt.close();
+		} finally {
+			conn.close();
+		}
+		return EntityDatabase.getInstance();
+	}
+
+	/**
+	 * Removes all attribute values.
+	 */
+	static void clear() throws SQLException {
+		Connection conn = connect();
+		try {
+			Statement stmt = conn.createStatement();
+			stmt.execute("DELETE FROM SP_ATTR");
+			stmt.close();
+		} finally {
+			conn.close();
+		}
+	}
+
+	static Connection connect() throws SQLException {
+		return DriverManager.getConnection(DB_CONNECTION, DB_USER, DB_PASSWORD);
+	}
+
+	static Set<String> values(String... values) {
+		return new HashSet<String>(Arrays.asList(values));
+	}
+
+	/**
+	 * Reads the values of the given attribute of the given entity directly,
+	 * i.e., without going through the entity database.
+	 */
+	static Set<String> fetch(String entityId, String attributeId)
+			throws SQLException {
+		Set<String> result = new HashSet<String>();
+		Connection conn = connect();
+		try {
+			PreparedStatement stmt = conn.prepareStatement("SELECT SP_ATTR.value FROM SP_ATTRTYPE INNER JOIN SP_ATTR ON SP_ATTR.family_id=SP_ATTRTYPE.id AND SP_ATTRTYPE.xacmlIdentifier=? and SP_ATTR.user_id=?");
+			stmt.setString(1, attributeId);
+			stmt.setLong(2, Long.valueOf(entityId));
+			ResultSet queryResult = stmt.executeQuery();
+			while (queryResult.next()) {
+				result.add(queryResult.getString("value"));
+			}
+			queryResult.close();
+			stmt.close();
+		} finally {
+			conn.close();
+		}
+		return result;
+	}
+}